@@ -1,15 +1,17 @@
 package huffman;
 
 import java.io.*;
-import java.util.HashMap;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
 
 /**
  * Handles the binary input from the file
  */
 class BinaryInput {
     private BufferedInputStream input;
-    private int byteToRead;
-    private int bitsRemaning;
+    private long bitBuffer;
+    private int bitsRemaining;
+    private boolean endOfInput;
     
     /**
      * Constructor
@@ -33,62 +35,93 @@ class BinaryInput {
     }
     
     /**
-     * Reads a single character from the file
+     * Reads whole bytes from the file until the buffer is nearly full
      */
     private void fillBits() {
-        try {
-            this.byteToRead = this.input.read();
-            this.bitsRemaning = 8;
-        }
-        catch (IOException e) {
-            this.byteToRead = -1;
-            this.bitsRemaning = -1;
+        while (this.bitsRemaining <= 56 && !this.endOfInput) {
+            int byteToRead;
+            
+            try {
+                byteToRead = this.input.read();
+            }
+            catch (IOException e) {
+                byteToRead = -1;
+            }
+            
+            if (byteToRead == -1) {
+                this.endOfInput = true;
+            }
+            else {
+                this.bitBuffer = (this.bitBuffer << 8) | byteToRead;
+                this.bitsRemaining += 8;
+            }
         }
     }
     
     /**
-     * Reads a single bit a time and if there are no more bits it fills again
-     * @return true or false depending on the bit
+     * Looks at the next bits without reading them, past the end of the file
+     * the bits are zeroes
+     * @param length the number of bits up to 32
+     * @return the bits with the first one as the most significant
      */
-    public boolean readBit() {
-        this.bitsRemaning--;
+    public int peekBits(int length) {
+        if (this.bitsRemaining < length) {
+            fillBits();
+        }
         
-        boolean bit = ((this.byteToRead >> this.bitsRemaning) & 1) == 1;
+        long mask = (1L << length) - 1;
         
-        if (this.bitsRemaning == 0) {
+        if (this.bitsRemaining < length) {
+            return (int) ((this.bitBuffer << (length - this.bitsRemaining)) & mask);
+        }
+        
+        return (int) ((this.bitBuffer >>> (this.bitsRemaining - length)) & mask);
+    }
+    
+    /**
+     * Skips over bits that have been looked at
+     * @param length the number of bits to skip
+     */
+    public void skipBits(int length) {
+        if (this.bitsRemaining < length) {
             fillBits();
         }
         
-        return bit;
+        this.bitsRemaining = Math.max(this.bitsRemaining - length, 0);
+    }
+    
+    /**
+     * Reads a number of bits
+     * @param length the number of bits up to 32
+     * @return the bits with the first one as the most significant
+     */
+    public int readBits(int length) {
+        int bits = peekBits(length);
+        skipBits(length);
+        return bits;
+    }
+    
+    /**
+     * Skips the bits left in the current byte
+     */
+    public void alignToByte() {
+        this.bitsRemaining -= this.bitsRemaining % 8;
     }
     
+    /**
+     * Reads a single bit
+     * @return true or false depending on the bit
+     */
+    public boolean readBit() {
+        return readBits(1) == 1;
+    }
     
     /**
      * Reads a single character from the file
      * @return a character
      */
     public char readChar() {
-        // If there is the whole character read it and fill the bits
-        if (this.bitsRemaning == 8) {
-            int x = this.byteToRead;
-            fillBits();
-            // Just get the last 8 bits of the 32 bit integer
-            return (char) (x & 0xff);
-        }
-        
-        // Otherwise read what is left in the byte
-        int x = this.byteToRead;
-        x <<= (8 - this.bitsRemaning);
-        
-        // Save how many bits remain so that we know how much to shift in the next byte
-        int oldBits = this.bitsRemaning;
-        // Get the next byte
-        fillBits();
-        this.bitsRemaning = oldBits;
-        
-        // Shift however many bits are needed to fill the byte
-        x |= (this.byteToRead >>> this.bitsRemaning);
-        return (char) (x & 0xff);
+        return (char) readBits(8);
     }
     
     /**
@@ -100,6 +133,14 @@ class BinaryInput {
         return (byte) (c & 0xff);
     }
     
+    /**
+     * Reads four bytes with the most significant byte first
+     * @return an integer
+     */
+    public int readInt() {
+        return readBits(32);
+    }
+    
     /**
      * Closes the input
      */
@@ -116,7 +157,11 @@ class BinaryInput {
      * @return returns if there is anything left to be read from the file
      */
     public boolean isEmpty() {
-        return this.byteToRead == -1;
+        if (this.bitsRemaining == 0) {
+            fillBits();
+        }
+        
+        return this.bitsRemaining == 0;
     }
 }
 
@@ -124,133 +169,366 @@ class BinaryInput {
  * Builds the huffman codes and decodes the files
  */
 class Huffman {
-    private HashMap<String, Character> hashCodes = new HashMap<String, Character>();
-    private int[] codeLengths = new int[256];
+    // Codes up to this length are found with a single table lookup
+    private static final int TABLE_BITS = 11;
+    
+    private int[] codeLengths;
     private BinaryInput input;
     private int maxCodeLength = 0;
-    private String EOF;
+    private int endOfFile;
+    private boolean pairs;
+    private boolean trailingByte;
+    private boolean hasChecksum;
+    private int expectedChecksum;
+    private Checksum headerChecksum = new CRC32C();
+    private boolean skipBadBlocks;
+    
+    // The first level table holds the symbol and length of each short code
+    // indexed by the next bits, longer codes have an entry of 0
+    private int[] decodeTable;
+    private int tableBits;
+    
+    // The second level finds longer codes from the first code at each length
+    private int[] firstCode;
+    private int[] numberOfCodesAtALength;
+    private int[] symbolOffsets;
+    private int[] sortedSymbols;
     
     /**
      * Constructor
+     * @param skipBadBlocks whether to leave out blocks that fail their checksum
+     * instead of stopping
+     */
+    public Huffman(boolean skipBadBlocks) {
+        this.skipBadBlocks = skipBadBlocks;
+    }
+    
+    /**
+     * Reads a byte of the header and adds it to the header checksum
+     * @return the byte
+     */
+    private int readHeaderByte() {
+        int byteRead = this.input.readChar();
+        this.headerChecksum.update(byteRead);
+        return byteRead;
+    }
+    
+    /**
+     * Reads an integer of the header and adds it to the header checksum
+     * @return the integer
      */
-    public Huffman() {
+    private int readHeaderInt() {
+        int intRead = 0;
         
+        for (int i = 0; i < 4; i++) {
+            intRead = (intRead << 8) | readHeaderByte();
+        }
+        
+        return intRead;
+    }
+    
+    /**
+     * @param length a code length from the header
+     * @return if the length can be stored as a code
+     */
+    private boolean isValidLength(int length) {
+        return length >= 1 && length <= Encode.MAX_CODE_LENGTH;
     }
     
     /**
      * Gets the code lengths to build the canonical codes
+     * @return false if the header is corrupt or uses flags this version does
+     * not know
      */
-    public void buildTreeFromFile() {
-        int numberOfCodes = this.input.readByte();
+    public boolean buildTreeFromFile() {
+        this.headerChecksum.reset();
+        int flags = readHeaderByte();
+        
+        if ((flags & ~Encode.KNOWN_FLAGS) != 0)
+            return false;
         
-        // For the number of codes read the character and the code length
+        this.pairs = (flags & Encode.FLAG_PAIRS) != 0;
+        this.trailingByte = (flags & Encode.FLAG_TRAILING_BYTE) != 0;
+        this.hasChecksum = (flags & Encode.FLAG_CHECKSUM) != 0;
+        this.endOfFile = this.pairs ? Encode.PAIR_SYMBOLS : Encode.BYTE_SYMBOLS;
+        this.codeLengths = new int[this.endOfFile + 1];
+        
+        // Reads the checksum of the uncompressed block
+        if (this.hasChecksum)
+            this.expectedChecksum = readHeaderInt();
+        
+        // There can not be more codes than symbols in the alphabet
+        int numberOfCodes = readHeaderInt();
+        
+        if (numberOfCodes < 0 || numberOfCodes > this.endOfFile || this.input.isEmpty())
+            return false;
+        
+        this.codeLengths[this.endOfFile] = readHeaderByte();
+        this.maxCodeLength = this.codeLengths[this.endOfFile];
+        
+        if (!isValidLength(this.maxCodeLength))
+            return false;
+        
+        // For the number of codes read the symbol and the code length
         for (int i = 0; i < numberOfCodes; i++) {
-            if (!this.input.isEmpty()) {
-                byte tempCode = this.input.readByte();
-                byte tempLength = this.input.readByte();
+            if (this.input.isEmpty())
+                return false;
+            
+            int tempCode = readHeaderByte();
+            
+            if (this.pairs)
+                tempCode = (tempCode << 8) | readHeaderByte();
+            
+            int tempLength = readHeaderByte();
+            
+            // A symbol can only have one code
+            if (this.codeLengths[tempCode] != 0 || !isValidLength(tempLength))
+                return false;
 
-                if (tempLength > this.maxCodeLength)
-                    this.maxCodeLength = tempLength;
+            if (tempLength > this.maxCodeLength)
+                this.maxCodeLength = tempLength;
 
-                this.codeLengths[tempCode] = tempLength;
-            }
+            this.codeLengths[tempCode] = tempLength;
         }
+        
+        // Compare the checksum of the header itself
+        if (this.hasChecksum && this.input.readInt() != (int) this.headerChecksum.getValue())
+            return false;
+        
+        // The codes have to fill the tree exactly, only a lone code leaves
+        // room since it still uses a bit
+        long kraftSum = 0;
+        
+        for (int j = 0; j < this.codeLengths.length; j++) {
+            if (this.codeLengths[j] != 0)
+                kraftSum += 1L << (Encode.MAX_CODE_LENGTH - this.codeLengths[j]);
+        }
+        
+        long fullTree = 1L << Encode.MAX_CODE_LENGTH;
+        
+        return numberOfCodes == 0 ? kraftSum <= fullTree : kraftSum == fullTree;
     }
     
     /**
      * Builds the canonical codes
      */
     public void buildCanonicalTree() {
+        this.firstCode = new int[this.maxCodeLength + 1];
+        this.numberOfCodesAtALength = new int[this.maxCodeLength + 1];
+        this.symbolOffsets = new int[this.maxCodeLength + 2];
+        
+        // Count the codes at each length
+        for (int j = 0; j < this.codeLengths.length; j++) {
+            if (this.codeLengths[j] != 0)
+                this.numberOfCodesAtALength[this.codeLengths[j]]++;
+        }
+        
+        // Start at the max code length and find the first code at each length
+        // After all the codes at a length are counted the next number to start
+        // making codes at is the beginning code number plus the number of codes
+        // at the length shifted
+        // This maintains the prefix codes
         int codeNumber = 0;
-        int numberOfCodesAtALength = 0;
-        int beginNumber = 0;
         
-        // Start at the max code length
         for (int i = this.maxCodeLength; i >= 1; i--) {
-            beginNumber = codeNumber;
+            this.firstCode[i] = codeNumber;
+            codeNumber = (codeNumber + this.numberOfCodesAtALength[i]) >> 1;
+        }
+        
+        // Sort the symbols by length then symbol so the symbols of a length
+        // are in code order
+        for (int i = 1; i <= this.maxCodeLength; i++) {
+            this.symbolOffsets[i + 1] = this.symbolOffsets[i] + this.numberOfCodesAtALength[i];
+        }
+        
+        this.sortedSymbols = new int[this.symbolOffsets[this.maxCodeLength + 1]];
+        int nextOffset[] = this.symbolOffsets.clone();
+        
+        for (int j = 0; j < this.codeLengths.length; j++) {
+            if (this.codeLengths[j] != 0)
+                this.sortedSymbols[nextOffset[this.codeLengths[j]]++] = j;
+        }
+        
+        // Fill the first level table with every entry that starts with a short code
+        this.tableBits = Math.min(this.maxCodeLength, TABLE_BITS);
+        this.decodeTable = new int[1 << this.tableBits];
+        
+        for (int i = 1; i <= this.tableBits; i++) {
+            for (int k = 0; k < this.numberOfCodesAtALength[i]; k++) {
+                int symbol = this.sortedSymbols[this.symbolOffsets[i] + k];
+                int start = (this.firstCode[i] + k) << (this.tableBits - i);
+                int end = start + (1 << (this.tableBits - i));
+                
+                for (int x = start; x < end; x++)
+                    this.decodeTable[x] = (symbol << 5) | i;
+            }
+        }
+    }
+    
+    /**
+     * Reads the next huffman code from the input
+     * @return the symbol or -1 if the bits are not a code
+     */
+    public int readSymbol() {
+        int entry = this.decodeTable[this.input.peekBits(this.tableBits)];
+        
+        if (entry != 0) {
+            this.input.skipBits(entry & 0x1f);
+            return entry >>> 5;
+        }
+        
+        // Otherwise keep adding bits to the code until it is at least the
+        // first code of its length since shorter prefixes are always smaller
+        int code = this.input.readBits(this.tableBits);
+        
+        for (int i = this.tableBits + 1; i <= this.maxCodeLength; i++) {
+            code = (code << 1) | (this.input.readBit() ? 1 : 0);
             
-            for (int j = 0; j < this.codeLengths.length; j++) {
-                // If the character has that length build its code
-                if (this.codeLengths[j] == i) {
-                    // Increment the amount of codes at this length
-                    numberOfCodesAtALength++;
-                    // Get the binary of the current code number
-                    String tempCode = Integer.toBinaryString(codeNumber);
-
-                    // Add leading zereos to the number
-                    if (tempCode.length() - 1 < i) {
-                        for (int x = tempCode.length(); x < i; x++)
-                            tempCode = "0" + tempCode;
-                    }
-
-                    // Get the correct code length for numbers with uneccesary leading zereos
-                    tempCode = tempCode.substring(0, i);
-
-                    this.hashCodes.put(tempCode, (char) j);
+            int index = code - this.firstCode[i];
+            
+            if (index >= 0 && index < this.numberOfCodesAtALength[i])
+                return this.sortedSymbols[this.symbolOffsets[i] + index];
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * Reads the codes of a block and writes their symbols
+     * @param writer the output to write to
+     * @param checksum checksum to be updated with the symbols or null
+     * @return false if the block ended before its end of file code
+     * @throws IOException if the output can not be written
+     */
+    public boolean expandBlock(OutputStream writer, Checksum checksum) throws IOException {
+        // Symbols are collected in a buffer so the checksum is done in bulk
+        byte buffer[] = new byte[8192];
+        int length = 0;
+        boolean complete = false;
+        
+        // While there is still more to read
+        // Read codes and write their symbols until the end of file
+        while(!this.input.isEmpty()) {
+            int symbol = readSymbol();
+            
+            if (symbol == -1)
+                break;
+            
+            if (symbol == this.endOfFile) {
+                // Write the byte left over from the pairs
+                if (this.trailingByte) {
+                    if (this.input.isEmpty())
+                        break;
                     
-                    // If it is the null character record the code
-                    if (j == 0)
-                        EOF = tempCode;
-
-                    codeNumber++;
-                }               
+                    buffer[length++] = (byte) this.input.readChar();
+                }
+                
+                complete = true;
+                break;
             }
             
-            // After all the codes are processed at a length calculate the next number
-            // to start making codes at by the beginning code number and the 
-            // number of codes at a length then shift it
-            // This maintains the prefix codes
-            codeNumber = (beginNumber + numberOfCodesAtALength) >> 1;
-            numberOfCodesAtALength = 0;
+            if (this.pairs)
+                buffer[length++] = (byte) (symbol >>> 8);
+            
+            buffer[length++] = (byte) symbol;
+            
+            // Leave room for a pair and the trailing byte
+            if (length >= buffer.length - 2) {
+                if (checksum != null)
+                    checksum.update(buffer, 0, length);
+                
+                writer.write(buffer, 0, length);
+                length = 0;
+            }
         }
+        
+        if (checksum != null)
+            checksum.update(buffer, 0, length);
+        
+        writer.write(buffer, 0, length);
+        
+        return complete;
     }
     
     /**
-     * Reads in the file and outputs the correct characters
+     * Reads in the file and outputs the correct symbols from every block
      * @param inputFile input file
      * @param outputFile outsput file
+     * @return false if any block was corrupt or truncated
      */
-    public void expandAndStore(String inputFile, String outputFile) {
-        // Open the input the build the tree and build the codes
+    public boolean expandAndStore(String inputFile, String outputFile) {
         this.input = new BinaryInput(inputFile);
-        buildTreeFromFile();
-        buildCanonicalTree();
+        boolean allValid = true;
 
         try {
             File output = new File(outputFile);
-
-            String code = "";
             
             if (!output.exists())
                 output.createNewFile();
             
-            BufferedWriter writer = new BufferedWriter(new FileWriter(output));
+            FileOutputStream file = new FileOutputStream(output);
+            BufferedOutputStream writer = new BufferedOutputStream(file);
+            Checksum checksum = new CRC32C();
+            int blockNumber = 0;
             
-            // While there is still more to read
-            // Read bits and add that to the code
-            while(!this.input.isEmpty()) {
-                boolean bit = this.input.readBit();
+            // For each block build the tree and the codes then expand it
+            // Blocks end on a whole byte so skip the padding after each one
+            while (!this.input.isEmpty()) {
+                blockNumber++;
                 
-                if (bit)
-                    code += "1";
-                else
-                    code += "0";
+                // Remember where the block starts so a bad one can be removed
+                writer.flush();
+                long blockStart = file.getChannel().position();
                 
-                // Attempt to match the code in the hashmap if it is write the code
-                if (this.hashCodes.containsKey(code) && (!this.hashCodes.get(code).equals(this.hashCodes.get(this.EOF)))) {
-                    writer.write(this.hashCodes.get(code));
-                    code = "";
+                // Nothing after a bad header can be found so stop there
+                if (!buildTreeFromFile()) {
+                    System.err.println("Block " + blockNumber + " has a corrupt or unknown header");
+                    allValid = false;
+                    break;
                 }
+                
+                buildCanonicalTree();
+                checksum.reset();
+                
+                boolean complete = expandBlock(writer, this.hasChecksum ? checksum : null);
+                boolean valid = !this.hasChecksum || (int) checksum.getValue() == this.expectedChecksum;
+                
+                // Nothing after a truncated block can be found so stop there
+                if (!complete) {
+                    System.err.println("Block " + blockNumber + " is truncated or corrupt");
+                    allValid = false;
+                    
+                    writer.flush();
+                    file.getChannel().truncate(blockStart);
+                    break;
+                }
+                
+                // Remove the output of a block that failed its checksum and
+                // either stop or go on to the next block
+                if (!valid) {
+                    System.err.println("Block " + blockNumber + " failed its checksum");
+                    allValid = false;
+                    
+                    writer.flush();
+                    file.getChannel().truncate(blockStart);
+                    
+                    if (!this.skipBadBlocks)
+                        break;
+                }
+                
+                this.input.alignToByte();
             }
-        
             
             this.input.close();
             writer.flush();
             writer.close();
         }
         catch (IOException e) {
-            System.out.println("Failed writing data to file");
+            System.err.println("Failed writing data to file");
+            allValid = false;
         }
+        
+        return allValid;
     }
 }
 
@@ -266,8 +544,9 @@ public class Decode {
     public static void main(String args[]) {
         String inputFile = null;
         String outputFile = null;
+        boolean skipBadBlocks = false;
         
-        if (args.length > 0)  {
+        if (args.length > 1)  {
             inputFile = args[0];
             outputFile = args[1];
         }
@@ -277,7 +556,21 @@ public class Decode {
             System.exit(0);
         }
         
-        Huffman codes = new Huffman();
-        codes.expandAndStore(inputFile, outputFile);
+        // Get the options
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals("--skip-bad-blocks"))
+                skipBadBlocks = true;
+            else {
+                System.err.println("Unknown option " + args[i]);
+                
+                System.exit(1);
+            }
+        }
+        
+        Huffman codes = new Huffman(skipBadBlocks);
+        
+        // Let scripts know when any of the file could not be decoded
+        if (!codes.expandAndStore(inputFile, outputFile))
+            System.exit(1);
     }    
 }
@@ -2,20 +2,26 @@ package huffman;
 
 import java.io.*;
 import java.util.PriorityQueue;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
 
 /**
  * Handles the binary output to a file
  */
 class BinaryOutput {
     private BufferedOutputStream output;
+    private FileOutputStream file;
+    private long startLength;
     private int byteToWrite;
     private int bitsRemaining;
     
     /**
      * Constructor that creates a buffered output stream
      * @param outputFile file to be written to
+     * @param append whether to write after the end of the file instead of
+     * replacing it
      */
-    public BinaryOutput(String outputFile) {
+    public BinaryOutput(String outputFile, boolean append) {
         File file = new File(outputFile);
         
         // If the file does not exist creat it
@@ -23,7 +29,9 @@ class BinaryOutput {
             if (!file.exists())
                 file.createNewFile();
 
-            this.output = new BufferedOutputStream(new FileOutputStream(file));
+            this.startLength = append ? file.length() : 0;
+            this.file = new FileOutputStream(file, append);
+            this.output = new BufferedOutputStream(this.file);
         }
         catch (IOException e) {
             System.out.println("Problem creating file to write to");
@@ -49,6 +57,32 @@ class BinaryOutput {
         }
     }
     
+    /**
+     * Writes the low bits of an integer starting with the most significant one
+     * @param bits the bits to be written
+     * @param length how many of the low bits are written
+     */
+    public void writeBits(int bits, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            this.byteToWrite = (this.byteToWrite << 1) | ((bits >>> i) & 1);
+            this.bitsRemaining++;
+            
+            if (this.bitsRemaining == 8) {
+                clearBits();
+            }
+        }
+    }
+    
+    /**
+     * Writes an integer as four bytes with the most significant byte first
+     * @param intToBeWritten integer to be written
+     */
+    public void writeInt(int intToBeWritten) {
+        for (int i = 24; i >= 0; i -= 8) {
+            writeByte(intToBeWritten >>> i);
+        }
+    }
+    
     /**
      * Writes the low 8 bits of an integer
      * @param byteToBeWritten integer to be written
@@ -95,6 +129,13 @@ class BinaryOutput {
         }
     }
     
+    /**
+     * Writes the remaining bits so the next write starts on a whole byte
+     */
+    public void alignToByte() {
+        clearBits();
+    }
+    
     /**
      * Closes the output file by writing the remaining bits then flushing and
      * closing the buffer
@@ -110,6 +151,20 @@ class BinaryOutput {
             System.out.println("Problem closing the output");
         }
     }
+    
+    /**
+     * Removes everything written since the output was opened then closes it
+     */
+    public void discard() {
+        try {
+            this.output.flush();
+            this.file.getChannel().truncate(this.startLength);
+            this.output.close();
+        }
+        catch (IOException e) {
+            System.out.println("Problem closing the output");
+        }
+    }
 }
 
 
@@ -119,18 +174,18 @@ class BinaryOutput {
 class HuffmanTree implements Comparable<HuffmanTree> {
     private int frequency;
     private HuffmanTree leftChild, rightChild;
-    private char character;
+    private int symbol;
     
     /**
      * Constructor
-     * @param frequency frequency of the character or node
-     * @param character character in the file or null
+     * @param frequency frequency of the symbol or node
+     * @param symbol symbol in the file or -1 for an inner node
      * @param left the left child
      * @param right the right child
      */
-    public HuffmanTree(int frequency, char character, HuffmanTree left, HuffmanTree right) {
+    public HuffmanTree(int frequency, int symbol, HuffmanTree left, HuffmanTree right) {
         this.frequency = frequency;
-        this.character = character;
+        this.symbol = symbol;
         this.leftChild = left;
         this.rightChild = right;
     }
@@ -160,10 +215,10 @@ class HuffmanTree implements Comparable<HuffmanTree> {
     }
     
     /**
-     * @return the character of the tree
+     * @return the symbol of the tree
      */
-    public char getCharacter() {
-        return this.character;
+    public int getSymbol() {
+        return this.symbol;
     }
         
     /**
@@ -186,32 +241,45 @@ class HuffmanTree implements Comparable<HuffmanTree> {
  */
 class HuffmanCode {
     private HuffmanTree tree;
-    private HuffmanTree canonicalTree;
-    private int codeLengths[] = new int[256];
+    private int codeLengths[];
     private int maxCodeLength = 0;
     private int numberOfSymbols = 0;
-    private String codes[] = new String[256];
+    private int codes[];
+    private int endOfFile;
+    private boolean pairs;
+    private boolean trailingByte;
+    private Checksum checksum;
+    private Checksum headerChecksum = new CRC32C();
+    private Checksum encodedChecksum = new CRC32C();
     private BinaryOutput output;
     
     /**
      * Constructor
+     * @param pairs whether the symbols are pairs of bytes instead of single bytes
      */
-    public HuffmanCode() {
-
+    public HuffmanCode(boolean pairs) {
+        this.pairs = pairs;
     }
     
     /**
      * Builds the huffman tree
-     * @param frequencies the frequency of all the characters in the file
+     * @param frequencies the frequency of all the symbols in the file with the
+     * end of file as the last one
      */
     public void buildTree(int[] frequencies) {
         PriorityQueue<HuffmanTree> trees = new PriorityQueue<HuffmanTree>();
         
-        // Put all of the characters in the priority queue
+        this.numberOfSymbols = 0;
+        this.maxCodeLength = 0;
+        this.endOfFile = frequencies.length - 1;
+        this.codeLengths = new int[frequencies.length];
+        this.codes = new int[frequencies.length];
+        
+        // Put all of the symbols in the priority queue
         for (int i = 0; i < frequencies.length; i++) {
             if (frequencies[i] != 0)
             {
-                trees.offer(new HuffmanTree(frequencies[i], (char) i, null, null));
+                trees.offer(new HuffmanTree(frequencies[i], i, null, null));
                 this.numberOfSymbols++;
             }
         }
@@ -223,7 +291,7 @@ class HuffmanCode {
             
             int tempFrequency = left.getFrequency() + right.getFrequency();
             
-            trees.offer(new HuffmanTree(tempFrequency, '\0', left, right));
+            trees.offer(new HuffmanTree(tempFrequency, -1, left, right));
         }
         
         this.tree = trees.poll();
@@ -235,45 +303,97 @@ class HuffmanCode {
     public void buildCanonicalTree() {        
         // Get the code lengths
         buildCodeLengths(this.tree, 0);
+        limitCodeLengths();
+        
+        // Count the codes at each length
+        int numberOfCodesAtALength[] = new int[this.maxCodeLength + 1];
         
+        for (int j = 0; j < this.codeLengths.length; j++) {
+            numberOfCodesAtALength[this.codeLengths[j]]++;
+        }
+        
+        // Start at the max code length and find the first code at each length
+        // After all the codes at a length are counted the next number to start
+        // making codes at is the beginning code number plus the number of codes
+        // at the length shifted
+        // This maintains the prefix codes
+        int nextCode[] = new int[this.maxCodeLength + 1];
         int codeNumber = 0;
-        int numberOfCodesAtALength = 0;
-        int beginNumber = 0;
         
-        // Start at the max code length
         for (int i = this.maxCodeLength; i >= 1; i--) {
-            beginNumber = codeNumber;
-            
-            for (int j = 0; j < this.codeLengths.length; j++) {
-                // If the character has that length build its code
-                if (this.codeLengths[j] == i) {
-                    // Increment the amount of codes at this length
-                    numberOfCodesAtALength++;
-                    // Get the binary of the current code number
-                    String tempCode = Integer.toBinaryString(codeNumber);
-
-                    // Add leading zereos to the number
-                    if (tempCode.length() - 1 < i) {
-                        for (int x = tempCode.length(); x < i; x++)
-                            tempCode = "0" + tempCode;
-                    }
-
-                    // Get the correct code length for numbers with uneccesary leading zereos
-                    tempCode = tempCode.substring(0, i);
-
-                    this.codes[j] = tempCode;
-
-                    codeNumber++;
-                }               
+            nextCode[i] = codeNumber;
+            codeNumber = (codeNumber + numberOfCodesAtALength[i]) >> 1;
+        }
+        
+        // Give each symbol the next code at its length in symbol order
+        for (int j = 0; j < this.codeLengths.length; j++) {
+            if (this.codeLengths[j] != 0) {
+                this.codes[j] = nextCode[this.codeLengths[j]]++;
             }
+        }
+    }
+    
+    /**
+     * Shortens codes that are too long to be stored the way JPEG limits its
+     * code lengths, two of the deepest leaves are moved up and a shorter leaf
+     * becomes their parent, so the codes still fill the whole tree
+     */
+    public void limitCodeLengths() {
+        if (this.maxCodeLength <= Encode.MAX_CODE_LENGTH)
+            return;
+        
+        // Count the codes at each length
+        int numberOfCodesAtALength[] = new int[this.maxCodeLength + 1];
+        
+        for (int j = 0; j < this.codeLengths.length; j++) {
+            if (this.codeLengths[j] != 0)
+                numberOfCodesAtALength[this.codeLengths[j]]++;
+        }
+        
+        // Sort the symbols from the shortest code to the longest
+        int symbolOffsets[] = new int[this.maxCodeLength + 1];
+        
+        for (int i = 2; i <= this.maxCodeLength; i++) {
+            symbolOffsets[i] = symbolOffsets[i - 1] + numberOfCodesAtALength[i - 1];
+        }
+        
+        int sortedSymbols[] = new int[this.numberOfSymbols];
+        
+        for (int j = 0; j < this.codeLengths.length; j++) {
+            if (this.codeLengths[j] != 0)
+                sortedSymbols[symbolOffsets[this.codeLengths[j]]++] = j;
+        }
+        
+        // Move pairs of leaves from each length that is too long up to the
+        // length above and put a leaf from the longest shorter length one
+        // level down as their parent
+        for (int i = this.maxCodeLength; i > Encode.MAX_CODE_LENGTH; i--) {
+            while (numberOfCodesAtALength[i] > 0) {
+                int j = i - 2;
+                
+                while (numberOfCodesAtALength[j] == 0)
+                    j--;
+                
+                numberOfCodesAtALength[i] -= 2;
+                numberOfCodesAtALength[i - 1]++;
+                numberOfCodesAtALength[j + 1] += 2;
+                numberOfCodesAtALength[j]--;
+            }
+        }
+        
+        // Give the new lengths out in order so the shortest codes stay with
+        // the symbols that had them
+        int length = 1;
+        
+        for (int k = 0; k < sortedSymbols.length; k++) {
+            while (numberOfCodesAtALength[length] == 0)
+                length++;
             
-            // After all the codes are processed at a length calculate the next number
-            // to start making codes at by the beginning code number and the 
-            // number of codes at a length then shift it
-            // This maintains the prefix codes
-            codeNumber = (beginNumber + numberOfCodesAtALength) >> 1;
-            numberOfCodesAtALength = 0;
-        }   
+            this.codeLengths[sortedSymbols[k]] = length;
+            numberOfCodesAtALength[length]--;
+        }
+        
+        this.maxCodeLength = Encode.MAX_CODE_LENGTH;
     }
     
     /**
@@ -286,7 +406,11 @@ class HuffmanCode {
         // Else traverse the tree
         if (tree.isLeaf())
         {
-            this.codeLengths[(int) tree.getCharacter()] = depth;
+            // A lone symbol still needs a bit to be written
+            if (depth == 0)
+                depth = 1;
+            
+            this.codeLengths[tree.getSymbol()] = depth;
             
             if (depth > this.maxCodeLength) {
                 this.maxCodeLength = depth;
@@ -299,71 +423,216 @@ class HuffmanCode {
         }
     }
     
+    /**
+     * Writes a byte of the header and adds it to the header checksum
+     * @param byteToBeWritten integer to be written
+     */
+    private void writeHeaderByte(int byteToBeWritten) {
+        this.output.writeByte(byteToBeWritten);
+        this.headerChecksum.update(byteToBeWritten);
+    }
+    
+    /**
+     * Writes an integer of the header and adds it to the header checksum
+     * @param intToBeWritten integer to be written
+     */
+    private void writeHeaderInt(int intToBeWritten) {
+        for (int i = 24; i >= 0; i -= 8) {
+            writeHeaderByte(intToBeWritten >>> i);
+        }
+    }
+    
     /**
      * Stores the huffman tree in the file
      */
-    public void storeHuffmanTree() {      
-        // Writes the number of characters in the file
-        this.output.writeByte(this.numberOfSymbols);
+    public void storeHuffmanTree() {
+        int flags = 0;
+        
+        if (this.pairs)
+            flags |= Encode.FLAG_PAIRS;
+        if (this.trailingByte)
+            flags |= Encode.FLAG_TRAILING_BYTE;
+        if (this.checksum != null)
+            flags |= Encode.FLAG_CHECKSUM;
+        
+        this.headerChecksum.reset();
+        writeHeaderByte(flags);
+        
+        // Writes the checksum of the uncompressed block
+        if (this.checksum != null)
+            writeHeaderInt((int) this.checksum.getValue());
+        
+        // Writes the number of symbols in the file then the end of file length
+        writeHeaderInt(this.numberOfSymbols - 1);
+        writeHeaderByte(this.codeLengths[this.endOfFile]);
 
-        // Writes the code the then length
-        for (int i = 0; i < this.codes.length; i++) {
-            if ((this.codes[i] != null))
+        // Writes the symbol the then length
+        for (int i = 0; i < this.endOfFile; i++) {
+            if (this.codeLengths[i] != 0)
             {
-                this.output.writeByte(i);
-                this.output.writeByte(this.codes[i].length());                                
+                if (this.pairs)
+                    writeHeaderByte(i >>> 8);
+                
+                writeHeaderByte(i);
+                writeHeaderByte(this.codeLengths[i]);
             }
         }
+        
+        // Writes the checksum of the header itself
+        if (this.checksum != null)
+            this.output.writeInt((int) this.headerChecksum.getValue());
+    }
+    
+    /**
+     * Writes the huffman code of a symbol
+     * @param symbol the symbol to be written
+     */
+    private void writeSymbol(int symbol) {
+        this.output.writeBits(this.codes[symbol], this.codeLengths[symbol]);
     }
     
     /**
-     * Stores the compressed information in the output file
-     * @param frequencies the frequencies of characters in the file
+     * Writes the codes of a block after its tree
+     * @param reader the input positioned at the start of the block
+     * @param blockLength the number of bytes the frequencies were counted from
+     * @return false if the input no longer matches what was counted or its
+     * checksum
+     * @throws IOException if the input can not be read
+     */
+    private boolean compressBlock(InputStream reader, int blockLength) throws IOException {
+        int currentByte;
+        int lastByte = -1;
+        int remaining = blockLength;
+        
+        this.encodedChecksum.reset();
+        
+        // For each symbol that was counted write its huffman code, bytes
+        // added to the file since then are left for the next block
+        while (remaining > 0 && (currentByte = reader.read()) != -1) {
+            remaining--;
+            
+            if (this.checksum != null)
+                this.encodedChecksum.update(currentByte);
+            
+            if (this.pairs) {
+                if (remaining == 0) {
+                    lastByte = currentByte;
+                    break;
+                }
+                
+                int nextByte = reader.read();
+                
+                if (nextByte == -1)
+                    break;
+                
+                remaining--;
+                currentByte = (currentByte << 8) | nextByte;
+                
+                if (this.checksum != null)
+                    this.encodedChecksum.update(nextByte);
+            }
+            
+            // A symbol without a code was not there when it was counted
+            if (this.codeLengths[currentByte] == 0)
+                return false;
+            
+            writeSymbol(currentByte);
+        }
+        
+        // If the file shrank the block can not be finished
+        if (remaining > 0)
+            return false;
+        
+        // The bytes that were encoded have to be the ones in the stored checksum
+        if (this.checksum != null && this.encodedChecksum.getValue() != this.checksum.getValue())
+            return false;
+        
+        // Write the end of file huffman code to the file
+        writeSymbol(this.endOfFile);
+        
+        // Then the byte left over from the pairs
+        if (this.trailingByte)
+            this.output.writeByte(lastByte);
+        
+        return true;
+    }
+    
+    /**
+     * Stores the compressed information in the output file as blocks that each
+     * have their own tree and checksum, so a bad block costs at most one block
+     * of work to find, blocks end on a whole byte so more can be appended later
      * @param inputFile input file to be compressed
      * @param outputFile file to be written to
+     * @param append whether to add the blocks to the end of the output file
+     * @param checksum checksum to store for each block or null
+     * @param blockSize the most bytes of input in a block
      */
-    public void compressAndStore(int[] frequencies, String inputFile, String outputFile){
-        // Build the tree and the canonical codes
-        buildTree(frequencies);     
-        buildCanonicalTree();
+    public void compressAndStore(String inputFile, String outputFile, boolean append, Checksum checksum, int blockSize){
+        int alphabetSize = this.pairs ? Encode.PAIR_SYMBOLS : Encode.BYTE_SYMBOLS;
+        boolean changed = false;
         
-        // Open the output and store the tree
-        this.output = new BinaryOutput(outputFile);
-        storeHuffmanTree();        
+        this.checksum = checksum;
+        
+        // Open the output once for all of the blocks
+        this.output = new BinaryOutput(outputFile, append);
         
         try {
-            File input = new File(inputFile);
-            
-            int currentLetter;
-
-            BufferedReader reader = new BufferedReader(new FileReader(input));
+            // One reader counts a block and the other encodes it after
+            FileInputStream counter = new FileInputStream(inputFile);
+            BufferedInputStream reader = new BufferedInputStream(new FileInputStream(inputFile));
+            int blockNumber = 0;
             
-            // For each character in the file write its huffman code
-            while ((currentLetter = reader.read()) != -1) {
-                String code = this.codes[currentLetter];
-
-                for (char binary : code.toCharArray()) {
-                    if (binary == '0')
-                        this.output.writeBit(false);
-                    else
-                        this.output.writeBit(true);
+            while (true) {
+                int frequencies[] = new int[alphabetSize + 1];
+                
+                // Add the end of file
+                frequencies[alphabetSize]++;
+                
+                if (checksum != null)
+                    checksum.reset();
+                
+                int blockLength = Encode.getSymbolFrequencies(counter, blockSize, frequencies, this.pairs, checksum);
+                
+                // An empty file still gets a block but the end of the file does not
+                if (blockLength == 0 && blockNumber > 0)
+                    break;
+                
+                blockNumber++;
+                
+                // A file with an odd length in pairs ends with a byte stored as is
+                this.trailingByte = this.pairs && blockLength % 2 == 1;
+                
+                // Build the tree and the canonical codes then store the block
+                buildTree(frequencies);     
+                buildCanonicalTree();
+                storeHuffmanTree();
+                
+                if (!compressBlock(reader, blockLength)) {
+                    changed = true;
+                    break;
                 }
+                
+                this.output.alignToByte();
+                
+                // Only a full block can be followed by another
+                if (blockLength < blockSize)
+                    break;
             }
             
+            counter.close();
             reader.close();
         }
         catch (IOException e) {
             System.out.println("Failed writing data to file");
         }
         
-        // Write the end of file huffman code to the file
-        String EOF = this.codes[0];
-        
-        for (char binary : EOF.toCharArray()) {
-            if (binary == '0')
-                this.output.writeBit(false);
-            else
-                this.output.writeBit(true);
+        // If the file shrank or changed the blocks can not be finished
+        if (changed) {
+            this.output.discard();
+            
+            System.err.println("Input file changed while it was compressed");
+            
+            System.exit(1);
         }
         
         this.output.close();
@@ -371,9 +640,24 @@ class HuffmanCode {
 }
 
 /**
- * Processes input from the command line and gets the character frequencies
+ * Processes input from the command line and gets the symbol frequencies
  */
 public class Encode {
+    // Alphabet sizes shared with Decode, the end of file symbol is stored one past the last symbol
+    public static final int BYTE_SYMBOLS = 256;
+    public static final int PAIR_SYMBOLS = 65536;
+    
+    // Header flags shared with Decode
+    public static final int FLAG_PAIRS = 1;
+    public static final int FLAG_TRAILING_BYTE = 2;
+    public static final int FLAG_CHECKSUM = 4;
+    public static final int KNOWN_FLAGS = FLAG_PAIRS | FLAG_TRAILING_BYTE | FLAG_CHECKSUM;
+    
+    // Codes are packed into an integer so they can not be any longer
+    public static final int MAX_CODE_LENGTH = 31;
+    
+    // Bytes of input in each block unless another size is given
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
     
     /**
      * Gets the command line arguments the makes the call to compress the file
@@ -382,13 +666,13 @@ public class Encode {
    public static void main(String args[]) {
         String inputFile = null;
         String outputFile = null;
-        int frequencies[] = new int[256];
-        
-        // Add the end of file
-        frequencies[0]++;
+        boolean pairs = false;
+        boolean append = false;
+        Checksum checksum = null;
+        int blockSize = DEFAULT_BLOCK_SIZE;
         
         // Get the input and output file name
-        if (args.length > 0)  {
+        if (args.length > 1)  {
             inputFile = args[0];
             outputFile = args[1];
         }
@@ -398,42 +682,94 @@ public class Encode {
             System.exit(0);
         }
         
-        getCharacterFrequencies(inputFile, frequencies);
+        // Get the options
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals("--pairs"))
+                pairs = true;
+            else if (args[i].equals("--append"))
+                append = true;
+            else if (args[i].equals("--checksum"))
+                checksum = new CRC32C();
+            else if (args[i].equals("--block-size") && i + 1 < args.length) {
+                try {
+                    blockSize = Integer.parseInt(args[++i]);
+                }
+                catch (NumberFormatException e) {
+                    blockSize = 0;
+                }
+                
+                if (blockSize < 2) {
+                    System.err.println("Block size must be a number of bytes of at least 2");
+                    
+                    System.exit(1);
+                }
+            }
+            else {
+                System.err.println("Unknown option " + args[i]);
+                
+                System.exit(1);
+            }
+        }
+        
+        if (!new File(inputFile).exists()) {
+            System.out.println("Input file does not exist");
+            
+            System.exit(0);
+        }
+        
+        // Pairs can not be split between blocks
+        if (pairs)
+            blockSize -= blockSize % 2;
         
         // Compress the file
-        HuffmanCode code = new HuffmanCode();
-        code.compressAndStore(frequencies, inputFile, outputFile);
+        HuffmanCode code = new HuffmanCode(pairs);
+        code.compressAndStore(inputFile, outputFile, append, checksum, blockSize);
     } 
     
    /**
-    * Gets the frequency of the characters
-    * @param input the input file
+    * Gets the frequency of the symbols and the checksum of a block
+    * @param reader the input positioned at the start of the block
+    * @param blockSize the most bytes to read
     * @param frequencies frequency array
+    * @param pairs whether symbols are pairs of bytes instead of single bytes
+    * @param checksum checksum to be updated with the block or null
+    * @return the number of bytes read
+    * @throws IOException if the input can not be read
     */
-    public static void getCharacterFrequencies(String input, int[] frequencies) {
-        File f = new File(input);
-        
-        if (!f.exists()) {
-            System.out.println("Input file does not exist");
-            
-            System.exit(0);
-        }
- 
-        try {
-
-            int currentLetter;
+    public static int getSymbolFrequencies(InputStream reader, int blockSize, int[] frequencies, boolean pairs, Checksum checksum) throws IOException {
+        byte buffer[] = new byte[8192];
+        int length;
+        int firstByte = -1;
+        int blockLength = 0;
 
-            BufferedReader reader = new BufferedReader(new FileReader(input));
-
-            // Add the frequency for each letter
-            while ((currentLetter = reader.read()) != -1) {                        
-                frequencies[currentLetter]++;
+        // Read the block a buffer at a time so the checksum is done in bulk
+        while (blockLength < blockSize && (length = reader.read(buffer, 0, Math.min(buffer.length, blockSize - blockLength))) != -1) {
+            if (checksum != null)
+                checksum.update(buffer, 0, length);
+            
+            blockLength += length;
+            
+            // Add the frequency for each symbol
+            for (int i = 0; i < length; i++) {
+                int currentByte = buffer[i] & 0xff;
+                
+                // A pair may start at the end of one buffer and finish in
+                // the next, a trailing byte is not counted since it is
+                // stored as is
+                if (pairs) {
+                    if (firstByte == -1) {
+                        firstByte = currentByte;
+                        continue;
+                    }
+                    
+                    currentByte = (firstByte << 8) | currentByte;
+                    firstByte = -1;
+                }
+                
+                frequencies[currentByte]++;
             }
-                        
-            reader.close();
-
-        } catch (IOException e) {
-                System.out.println("Problem reading the file");
         }
+        
+        return blockLength;
     }   
 }